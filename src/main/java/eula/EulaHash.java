@@ -84,6 +84,11 @@ public class EulaHash {
         }
     }
 
+    // リーフを並列にハッシュしたMerkleルートを "SHA-256-TREE/<リーフサイズ>:<16進>" の形式で返す
+    public static String sha256Tree(File file) throws EulaException {
+        return new EulaTreeHash(file).labelledRoot();
+    }
+
     public static String sha512(String str) throws EulaException {
         return hash("SHA-512", str.getBytes());
     }
@@ -105,7 +110,7 @@ public class EulaHash {
         }
     }
 
-    private static String bytesToHex(byte[] hash) {
+    static String bytesToHex(byte[] hash) {
         StringBuilder hexString = new StringBuilder(2 * hash.length);
         for (byte b : hash) {
             String hex = Integer.toHexString(0xff & b);
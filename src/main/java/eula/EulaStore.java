@@ -0,0 +1,627 @@
+package eula;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * <h1>EulaStore</h1>
+ * Provides an encrypted key-value store for binary blobs on local disk.
+ * <p>
+ * Every {@link #put(String, byte[])} and {@link #delete(String)} is appended as a self-contained AES-GCM record to a single
+ * segment file, and an in-memory index maps each live key to the position of its latest record. A cold {@link #get(String)}
+ * therefore costs one positioned read and one decryption. Superseded records are reclaimed by a compaction that runs on a
+ * background thread once the dead bytes outweigh the live ones, or on demand through {@link #compact()}.
+ * </p>
+ * <p>
+ * An optional LRU cache keeps recently read values in decrypted form, bounded by their total size in bytes. Hot reads are
+ * served from the cache without touching the disk or the cipher. Cached values are zero-filled when they are evicted,
+ * overwritten, deleted, or when the store is closed.
+ * </p>
+ * <p>
+ *     <b>Usage Example:</b>
+ * {@snippet lang="java" :
+ *     SecretKey key = new EulaAES("password123").key;
+ *     try (EulaStore store = new EulaStore(new File("blobs.eulastore"), key, 16 << 20)) {
+ *         store.put("avatar", bytes);
+ *         byte[] avatar = store.get("avatar");
+ *         store.delete("avatar");
+ *     }
+ * }
+ * </p>
+ *
+ * @author rxxuzi
+ * @see EulaAES
+ * @see EulaFast
+ */
+public final class EulaStore implements Closeable {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    // レコード: [暗号文長 int][種別 byte][IV 12byte][ヘッダのCRC32 int][暗号文 (キー長 int, キー, 値)]
+    private static final int CRC_OFFSET = Integer.BYTES + 1 + IV_SIZE;
+    private static final int HEADER_SIZE = CRC_OFFSET + Integer.BYTES;
+    private static final int MAX_RECORD_SIZE = Integer.MAX_VALUE - 64;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // ファイル先頭に置く鍵確認用のレコード
+    private static final byte CHECK = 3;
+
+    // これ以上の不要領域がたまったらコンパクションを検討する
+    private static final long COMPACT_MIN_GARBAGE = 4L << 20;
+
+    private final Path path;
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactLock = new Object();
+    private final AtomicBoolean compactScheduled = new AtomicBoolean();
+    private final ExecutorService compactor;
+    private final Cache cache;
+
+    private FileChannel channel;
+    private Map<String, Entry> index = new HashMap<>();
+    private long end;
+    private long liveBytes;
+    private boolean closed;
+
+    public EulaStore(File file, SecretKey key) throws EulaException {
+        this(file, key, 0);
+    }
+
+    // cacheBytes: 復号済みの値を保持するキャッシュの上限 (0で無効)
+    public EulaStore(File file, SecretKey key, long cacheBytes) throws EulaException {
+        if (cacheBytes < 0) {
+            throw new EulaException("Cache size must not be negative");
+        }
+        this.path = file.toPath();
+        this.key = key;
+        this.cache = cacheBytes > 0 ? new Cache(cacheBytes) : null;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        } catch (IOException e) {
+            closeQuietly();
+            throw new EulaException("Error opening store", e);
+        } catch (EulaException e) {
+            closeQuietly();
+            throw e;
+        }
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "EulaStore-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void put(String name, byte[] value) throws EulaException {
+        byte[] record = seal(PUT, name, value);
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            long offset = append(record);
+            Entry old = index.put(name, new Entry(offset, record.length));
+            if (old != null) liveBytes -= old.length;
+            liveBytes += record.length;
+            if (cache != null) cache.remove(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    // キーが存在しない場合はnullを返す。戻り値は呼び出し側が自由に変更してよいコピー
+    public byte[] get(String name) throws EulaException {
+        if (cache != null) {
+            byte[] hit = cache.get(name);
+            if (hit != null) return hit;
+        }
+
+        Entry entry;
+        byte[] record;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            entry = index.get(name);
+            if (entry == null) return null;
+            record = new byte[entry.length];
+            readFully(ByteBuffer.wrap(record), entry.offset);
+        } catch (IOException e) {
+            throw new EulaException("Error reading store", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Record opened = open(record);
+        if (opened == null || opened.type != PUT || !opened.name.equals(name)) {
+            throw new EulaException("Corrupted record in store");
+        }
+        if (cache != null) {
+            // 読み込み後に上書き・削除されていなければキャッシュする
+            lock.readLock().lock();
+            try {
+                if (index.get(name) == entry) cache.put(name, opened.value.clone());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return opened.value;
+    }
+
+    public boolean delete(String name) throws EulaException {
+        byte[] record = seal(DELETE, name, new byte[0]);
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (!index.containsKey(name)) return false;
+            append(record);
+            liveBytes -= index.remove(name).length;
+            if (cache != null) cache.remove(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeCompact();
+        return true;
+    }
+
+    public boolean contains(String name) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 有効なレコードだけを新しいセグメントファイルへ書き出し、置き換える
+    public void compact() throws EulaException {
+        synchronized (compactLock) {
+            Map<String, Entry> snapshot;
+            long snapshotEnd;
+            lock.readLock().lock();
+            try {
+                ensureOpen();
+                if (end == liveBytes) return;
+                snapshot = new HashMap<>(index);
+                snapshotEnd = end;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+            byte[] check = seal(CHECK, "", new byte[0]);
+            Map<String, Entry> compacted = new HashMap<>();
+            long position;
+            try {
+                // スナップショット分はロックを取らずにコピーする (追記は末尾にしか行われない)
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    write(out, check, 0);
+                    position = copy(snapshot, compacted, out, check.length);
+                }
+
+                lock.writeLock().lock();
+                try {
+                    ensureOpen();
+                    // スナップショット以降に追記された範囲は削除レコードも含めてそのままコピーする。
+                    // 再読み込み時に、コピー済みの古いPUTより後で削除が再生される
+                    long tailStart = position;
+                    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        position = copyRange(out, snapshotEnd, end, tailStart);
+                        out.force(true);
+                    }
+                    compacted.keySet().retainAll(index.keySet());
+                    for (Map.Entry<String, Entry> e : index.entrySet()) {
+                        Entry entry = e.getValue();
+                        if (entry.offset >= snapshotEnd) {
+                            compacted.put(e.getKey(), new Entry(tailStart + entry.offset - snapshotEnd, entry.length));
+                        }
+                    }
+
+                    channel.close();
+                    try {
+                        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        index = compacted;
+                        end = position;
+                        liveBytes = check.length;
+                        for (Entry entry : compacted.values()) liveBytes += entry.length;
+                    } finally {
+                        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                throw new EulaException("Error compacting store", e);
+            } finally {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (compactLock) {
+            lock.writeLock().lock();
+            try {
+                if (cache != null) cache.clear();
+                index.clear();
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // 不要領域が有効領域を上回ったらバックグラウンドでコンパクションする。
+    // close() は書き込みロックを取ってから compactor を停止するので、読み込みロック中の登録は拒否されない
+    private void maybeCompact() {
+        lock.readLock().lock();
+        try {
+            long garbage = end - liveBytes;
+            if (closed || garbage < COMPACT_MIN_GARBAGE || garbage < liveBytes) return;
+            if (!compactScheduled.compareAndSet(false, true)) return;
+            compactor.execute(() -> {
+                compactScheduled.set(false);
+                try {
+                    compact();
+                } catch (EulaException e) {
+                    if (!isClosed()) e.printStackTrace();
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureOpen() throws EulaException {
+        if (closed) throw new EulaException("Store is closed");
+    }
+
+    // 起動時にセグメントファイルを走査し、インデックスを再構築する。
+    // 末尾の壊れたレコードは、それ以前のレコードが認証できた場合に限り書き込み途中とみなして切り捨てる
+    private void load() throws IOException, EulaException {
+        long fileSize = channel.size();
+        if (fileSize == 0) {
+            byte[] check = seal(CHECK, "", new byte[0]);
+            append(check);
+            channel.force(true);
+            liveBytes = check.length;
+            return;
+        }
+
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position < fileSize) {
+            if (position == 0) {
+                // 鍵確認レコードが読めなければ、鍵が違うかストアのファイルではない
+                Record check = fileSize < HEADER_SIZE ? null : readRecord(header, position, fileSize);
+                if (check == null || check.type != CHECK) {
+                    throw new EulaException("Invalid key or not a store file");
+                }
+                position += HEADER_SIZE + header.getInt(0);
+                liveBytes += position;
+                continue;
+            }
+
+            // ヘッダの途中で途切れている
+            if (fileSize - position < HEADER_SIZE) break;
+            header.clear();
+            readFully(header, position);
+            if (!validHeader(header.array())) {
+                // 確保だけされて書き込まれなかった末尾の領域
+                if (isZero(position, fileSize)) break;
+                throw new EulaException("Corrupted record in store");
+            }
+            long length = (long) HEADER_SIZE + header.getInt(0);
+            // ヘッダは正しいので長さは信頼できる。EOFを越えるのは最後の書き込みが途切れた場合のみ
+            if (position + length > fileSize) break;
+
+            Record opened = readRecord(header, position, fileSize);
+            if (opened == null || opened.type == CHECK) {
+                if (opened == null && position + length == fileSize) break;
+                throw new EulaException("Corrupted record in store");
+            }
+            if (opened.type == PUT) {
+                Entry old = index.put(opened.name, new Entry(position, (int) length));
+                if (old != null) liveBytes -= old.length;
+                liveBytes += length;
+                wipe(opened.value);
+            } else {
+                Entry old = index.remove(opened.name);
+                if (old != null) liveBytes -= old.length;
+            }
+            position += length;
+        }
+        // 書き込み途中で中断された末尾のレコードは切り捨てる
+        if (position < fileSize) channel.truncate(position);
+        end = position;
+    }
+
+    // 指定位置のレコードを読み込んで復号化する。読めない場合はnullを返す
+    private Record readRecord(ByteBuffer header, long position, long fileSize) throws IOException, EulaException {
+        header.clear();
+        readFully(header, position);
+        if (!validHeader(header.array())) return null;
+        long length = (long) HEADER_SIZE + header.getInt(0);
+        if (position + length > fileSize) return null;
+        byte[] record = new byte[(int) length];
+        readFully(ByteBuffer.wrap(record), position);
+        return open(record);
+    }
+
+    // ヘッダのCRCと長さを検証する
+    private static boolean validHeader(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int cipherLength = buffer.getInt(0);
+        byte type = buffer.get(Integer.BYTES);
+        return buffer.getInt(CRC_OFFSET) == headerCrc(record)
+                && cipherLength > 0 && (long) HEADER_SIZE + cipherLength <= MAX_RECORD_SIZE
+                && (type == PUT || type == DELETE || type == CHECK);
+    }
+
+    private static int headerCrc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CRC_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    private boolean isZero(long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long position = from; position < to; position += buffer.limit()) {
+            buffer.clear();
+            if (to - position < buffer.capacity()) buffer.limit((int) (to - position));
+            readFully(buffer, position);
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    private long copy(Map<String, Entry> from, Map<String, Entry> to, FileChannel out, long position) throws IOException {
+        for (Map.Entry<String, Entry> e : from.entrySet()) {
+            Entry entry = e.getValue();
+            ByteBuffer record = ByteBuffer.allocate(entry.length);
+            readFully(record, entry.offset);
+            write(out, record.array(), position);
+            to.put(e.getKey(), new Entry(position, entry.length));
+            position += entry.length;
+        }
+        return position;
+    }
+
+    // 現在のセグメントの [from, to) をそのまま out の position 以降へコピーする
+    private long copyRange(FileChannel out, long from, long to, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long offset = from; offset < to; offset += buffer.limit()) {
+            buffer.clear();
+            if (to - offset < buffer.capacity()) buffer.limit((int) (to - offset));
+            readFully(buffer, offset);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer, position + buffer.position());
+            }
+            position += buffer.limit();
+        }
+        return position;
+    }
+
+    private static void write(FileChannel out, byte[] record, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + buffer.position());
+        }
+    }
+
+    private long append(byte[] record) throws EulaException {
+        long offset = end;
+        try {
+            write(channel, record, offset);
+        } catch (IOException e) {
+            throw new EulaException("Error writing store", e);
+        }
+        end += record.length;
+        return offset;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of store");
+            }
+        }
+    }
+
+    // レコードを暗号化する
+    private byte[] seal(byte type, String name, byte[] value) throws EulaException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long plainLength = (long) Integer.BYTES + nameBytes.length + value.length;
+        if (HEADER_SIZE + plainLength + TAG_BITS / 8 > MAX_RECORD_SIZE) {
+            throw new EulaException("Value too large for store");
+        }
+        byte[] plain = ByteBuffer.allocate((int) plainLength)
+                .putInt(nameBytes.length).put(nameBytes).put(value).array();
+
+        byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, iv);
+            cipher.updateAAD(new byte[]{type});
+            byte[] sealed = cipher.doFinal(plain);
+            byte[] record = ByteBuffer.allocate(HEADER_SIZE + sealed.length)
+                    .putInt(sealed.length).put(type).put(iv).putInt(0).put(sealed).array();
+            ByteBuffer.wrap(record).putInt(CRC_OFFSET, headerCrc(record));
+            return record;
+        } catch (GeneralSecurityException e) {
+            throw new EulaException("Error encrypting record", e);
+        } finally {
+            wipe(plain);
+        }
+    }
+
+    // レコードを復号化する。認証に失敗した場合はnullを返す
+    private Record open(byte[] record) throws EulaException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int cipherLength = buffer.getInt();
+        byte type = buffer.get();
+        if (cipherLength != record.length - HEADER_SIZE || !validHeader(record)) return null;
+
+        byte[] plain;
+        try {
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, Arrays.copyOfRange(record, Integer.BYTES + 1, CRC_OFFSET));
+            cipher.updateAAD(new byte[]{type});
+            plain = cipher.doFinal(record, HEADER_SIZE, cipherLength);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new EulaException("Error decrypting record", e);
+        }
+
+        try {
+            ByteBuffer body = ByteBuffer.wrap(plain);
+            int nameLength = body.getInt();
+            if (nameLength < 0 || nameLength > body.remaining()) return null;
+            String name = new String(plain, Integer.BYTES, nameLength, StandardCharsets.UTF_8);
+            byte[] value = Arrays.copyOfRange(plain, Integer.BYTES + nameLength, plain.length);
+            return new Record(type, name, value);
+        } finally {
+            wipe(plain);
+        }
+    }
+
+    private Cipher getCipher(int cipherMode, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(cipherMode, key, new GCMParameterSpec(TAG_BITS, iv));
+        return cipher;
+    }
+
+    private void closeQuietly() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void wipe(byte[] data) {
+        if (data != null) Arrays.fill(data, (byte) 0);
+    }
+
+    private record Entry(long offset, int length) {
+    }
+
+    private record Record(byte type, String name, byte[] value) {
+    }
+
+    // 復号済みの値を保持するLRUキャッシュ。追い出された値はゼロで上書きする
+    private static final class Cache {
+        private final long capacity;
+        private final LinkedHashMap<String, byte[]> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Cache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String name) {
+            byte[] value = map.get(name);
+            return value == null ? null : value.clone();
+        }
+
+        synchronized void put(String name, byte[] value) {
+            if (value.length > capacity) {
+                wipe(value);
+                return;
+            }
+            remove(name);
+            map.put(name, value);
+            bytes += value.length;
+            Iterator<byte[]> it = map.values().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                byte[] eldest = it.next();
+                it.remove();
+                bytes -= eldest.length;
+                wipe(eldest);
+            }
+        }
+
+        synchronized void remove(String name) {
+            byte[] old = map.remove(name);
+            if (old != null) {
+                bytes -= old.length;
+                wipe(old);
+            }
+        }
+
+        synchronized void clear() {
+            map.values().forEach(EulaStore::wipe);
+            map.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package eula;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <h1>EulaTreeHash</h1>
+ * Computes a SHA-256 Merkle tree hash of a file, hashing fixed-size leaves in parallel on a ForkJoin pool.
+ * <p>
+ * The file is split into leaves of {@link #DEFAULT_LEAF_SIZE} bytes (or a caller-specified size). Each leaf is hashed
+ * independently, so large files are fingerprinted using every available core instead of a single sequential digest.
+ * Leaf hashes are combined pairwise into a root in the style of RFC 6962: leaves are hashed as {@code SHA-256(0x00 || data)}
+ * and inner nodes as {@code SHA-256(0x01 || left || right)}, with an unpaired node promoted unchanged to the next level.
+ * </p>
+ * <p>
+ * The result is <b>not</b> a plain SHA-256 of the file and does not match {@link EulaHash#sha256(File)}; an empty file is
+ * treated as a single empty leaf. {@link #root()} returns the bare hex digest, while {@link #labelledRoot()} and
+ * {@link EulaHash#sha256Tree(File)} prefix it with {@value #ALGORITHM} and the leaf size, since two roots are only
+ * comparable when both were built with the same leaf size.
+ * </p>
+ * <p>
+ * The leaf hashes are retained, so after a partial modification of the file only the affected leaves need to be re-hashed:
+ * {@snippet lang="java" :
+ *     EulaTreeHash tree = new EulaTreeHash(new File("disk.img"));
+ *     String before = tree.root();
+ *
+ *     // ... overwrite 4096 bytes at offset 1_000_000 ...
+ *     tree.update(1_000_000, 4096);
+ *     String after = tree.root();
+ * }
+ * </p>
+ *
+ * @author rxxuzi
+ * @see EulaHash
+ */
+public final class EulaTreeHash {
+    public static final String ALGORITHM = "SHA-256-TREE";
+    public static final int DEFAULT_LEAF_SIZE = 1 << 20;
+
+    private static final String DIGEST = "SHA-256";
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    // 1タスクあたりに逐次処理するリーフ数
+    private static final int LEAVES_PER_TASK = 8;
+
+    private final File file;
+    private final int leafSize;
+    private final ForkJoinPool pool;
+
+    private long length;
+    private byte[][] leaves;
+    private byte[] root;
+
+    public EulaTreeHash(File file) throws EulaException {
+        this(file, DEFAULT_LEAF_SIZE);
+    }
+
+    public EulaTreeHash(File file, int leafSize) throws EulaException {
+        this(file, leafSize, ForkJoinPool.commonPool());
+    }
+
+    public EulaTreeHash(File file, int leafSize, ForkJoinPool pool) throws EulaException {
+        if (leafSize <= 0) {
+            throw new EulaException("Leaf size must be positive");
+        }
+        this.file = file;
+        this.leafSize = leafSize;
+        this.pool = pool;
+        this.leaves = new byte[0][];
+        rehash(0, Long.MAX_VALUE);
+    }
+
+    // ルートハッシュを16進文字列で返す。ラベルは付かないので、保存する場合は labelledRoot() を使う
+    public synchronized String root() {
+        return EulaHash.bytesToHex(root);
+    }
+
+    // アルゴリズム名とリーフサイズを付けたルートハッシュを返す (例: SHA-256-TREE/1048576:ab12...)
+    public synchronized String labelledRoot() {
+        return ALGORITHM + "/" + leafSize + ":" + root();
+    }
+
+    public int leafSize() {
+        return leafSize;
+    }
+
+    public synchronized int leafCount() {
+        return leaves.length;
+    }
+
+    // 指定したリーフのハッシュを16進文字列で返す
+    public synchronized String leaf(int index) {
+        return EulaHash.bytesToHex(leaves[index]);
+    }
+
+    // ファイルの変更範囲 [offset, offset + len) に重なるリーフのみ再計算する。
+    // ファイル長が変わった場合は末尾のリーフも再計算される。
+    public synchronized void update(long offset, long len) throws EulaException {
+        if (offset < 0 || len < 0) {
+            throw new EulaException("Invalid range for tree hash update");
+        }
+        rehash(offset, len);
+    }
+
+    private synchronized void rehash(long offset, long len) throws EulaException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long newLength = channel.size();
+            int count = leafCount(newLength);
+
+            byte[][] next = Arrays.copyOf(leaves, count);
+            boolean[] dirty = new boolean[count];
+
+            // 変更範囲に重なるリーフ
+            if (len > 0 && count > 0) {
+                long end = len > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + len;
+                int first = (int) Math.min(offset / leafSize, count);
+                int last = (int) Math.min((end - 1) / leafSize, count - 1);
+                for (int i = first; i <= last; i++) dirty[i] = true;
+            }
+
+            // 長さが変わった場合、元の最終リーフ以降はすべて再計算
+            if (newLength != length) {
+                int from = Math.max(Math.min(leafCount(length), count) - 1, 0);
+                for (int i = from; i < count; i++) dirty[i] = true;
+            }
+
+            pool.invoke(new LeafTask(channel, next, dirty, 0, count));
+
+            this.length = newLength;
+            this.leaves = next;
+            this.root = merkleRoot(next);
+        } catch (UncheckedIOException e) {
+            throw new EulaException("File read error", e.getCause());
+        } catch (IOException e) {
+            throw new EulaException("File read error", e);
+        }
+    }
+
+    private int leafCount(long size) throws EulaException {
+        long count = (size + leafSize - 1) / leafSize;
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new EulaException("File too large for leaf size " + leafSize);
+        }
+        return (int) count;
+    }
+
+    // リーフハッシュからMerkleルートを計算する
+    private static byte[] merkleRoot(byte[][] level) throws EulaException {
+        MessageDigest digest = newDigest();
+        // 空のファイルは空のリーフ1つとして扱い、SHA-256("")と区別する
+        if (level.length == 0) {
+            return digest.digest(new byte[]{LEAF_PREFIX});
+        }
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = 2 * i;
+                if (left + 1 < level.length) {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level[left]);
+                    digest.update(level[left + 1]);
+                    parent[i] = digest.digest();
+                } else {
+                    parent[i] = level[left];
+                }
+            }
+            level = parent;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest newDigest() throws EulaException {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new EulaException("Algorithm not found in hash", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return labelledRoot();
+    }
+
+    // リーフ範囲 [from, to) を分割して並列にハッシュする
+    private final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final byte[][] out;
+        private final boolean[] dirty;
+        private final int from;
+        private final int to;
+
+        LeafTask(FileChannel channel, byte[][] out, boolean[] dirty, int from, int to) {
+            this.channel = channel;
+            this.out = out;
+            this.dirty = dirty;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAVES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, out, dirty, from, mid),
+                        new LeafTask(channel, out, dirty, mid, to));
+                return;
+            }
+
+            MessageDigest digest;
+            try {
+                digest = newDigest();
+            } catch (EulaException e) {
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer buffer = null;
+            for (int i = from; i < to; i++) {
+                if (!dirty[i]) continue;
+                if (buffer == null) buffer = ByteBuffer.allocate(leafSize);
+                out[i] = hashLeaf(digest, buffer, (long) i * leafSize);
+            }
+        }
+
+        private byte[] hashLeaf(MessageDigest digest, ByteBuffer buffer, long position) {
+            buffer.clear();
+            try {
+                // FileChannelの位置指定読み込みはスレッドセーフ
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, position + buffer.position());
+                    if (n < 0) break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+            digest.update(LEAF_PREFIX);
+            digest.update(buffer);
+            return digest.digest();
+        }
+    }
+}